@@ -0,0 +1,33 @@
+package controllers;
+
+import play.mvc.Controller;
+import play.mvc.Result;
+import services.ChatLog;
+
+import javax.inject.Inject;
+
+/**
+ * Bulk export of recorded chat traffic for compliance.
+ */
+public class ChatExportController extends Controller {
+
+    private final ChatLog chatLog;
+
+    @Inject
+    public ChatExportController(ChatLog chatLog) {
+        this.chatLog = chatLog;
+    }
+
+    /**
+     * Streams every message recorded in {@code [from, to)}, both in epoch milliseconds, as a chunked
+     * response with one {@code <epochMillis>\t<message>} line per message.
+     */
+    public Result export(Long from, Long to) {
+        if (from >= to) {
+            return badRequest("from must be before to");
+        }
+        return ok().chunked(chatLog.export(from, to))
+                .as("text/plain; charset=utf-8")
+                .withHeader(CONTENT_DISPOSITION, "attachment; filename=\"chat-" + from + "-" + to + ".log\"");
+    }
+}
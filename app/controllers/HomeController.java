@@ -10,6 +10,7 @@ import akka.stream.Materializer;
 import akka.stream.javadsl.*;
 import play.libs.F;
 import play.mvc.*;
+import services.ChatLog;
 
 import javax.inject.Inject;
 import java.net.URI;
@@ -26,7 +27,8 @@ public class HomeController extends Controller {
 
     @Inject
     public HomeController(ActorSystem actorSystem,
-                          Materializer mat) {
+                          Materializer mat,
+                          ChatLog chatLog) {
         org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(this.getClass());
         LoggingAdapter logging = Logging.getLogger(actorSystem.eventStream(), logger.getName());
 
@@ -39,6 +41,7 @@ public class HomeController extends Controller {
         Pair<Sink<String, NotUsed>, Source<String, NotUsed>> sinkSourcePair = source.toMat(sink, Keep.both()).run(mat);
         Sink<String, NotUsed> chatSink = sinkSourcePair.first();
         Source<String, NotUsed> chatSource = sinkSourcePair.second();
+        chatSource.runWith(chatLog.sink(), mat);
         this.userFlow = Flow.fromSinkAndSource(chatSink, chatSource).log("userFlow", logging);
     }
 
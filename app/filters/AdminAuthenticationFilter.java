@@ -0,0 +1,52 @@
+package filters;
+
+import com.typesafe.config.Config;
+import play.libs.streams.Accumulator;
+import play.mvc.EssentialAction;
+import play.mvc.EssentialFilter;
+import play.mvc.Http;
+import play.mvc.Results;
+
+import javax.inject.Inject;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Optional;
+
+/**
+ * Requires the shared admin token ({@code admin.token}) as a bearer token on every request under
+ * {@code /admin/}.  When no token is configured the admin routes are closed altogether.
+ */
+public class AdminAuthenticationFilter extends EssentialFilter {
+
+    private static final String ADMIN_PATH_PREFIX = "/admin/";
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private final Optional<byte[]> token;
+
+    @Inject
+    public AdminAuthenticationFilter(Config config) {
+        this.token = config.hasPath("admin.token")
+                ? Optional.of(config.getString("admin.token").getBytes(StandardCharsets.UTF_8))
+                : Optional.empty();
+    }
+
+    @Override
+    public EssentialAction apply(EssentialAction next) {
+        return EssentialAction.of((Http.RequestHeader requestHeader) -> {
+            if (requestHeader.path().startsWith(ADMIN_PATH_PREFIX) && !authenticated(requestHeader)) {
+                return Accumulator.done(Results.unauthorized().withHeader(Http.HeaderNames.WWW_AUTHENTICATE, "Bearer"));
+            }
+            return next.apply(requestHeader);
+        });
+    }
+
+    private boolean authenticated(Http.RequestHeader requestHeader) {
+        Optional<String> authorization = requestHeader.getHeaders().get(Http.HeaderNames.AUTHORIZATION);
+        if (!token.isPresent() || !authorization.isPresent() || !authorization.get().startsWith(BEARER_PREFIX)) {
+            return false;
+        }
+        byte[] presented = authorization.get().substring(BEARER_PREFIX.length()).getBytes(StandardCharsets.UTF_8);
+        // Constant-time comparison, so the token cannot be guessed byte by byte from response times.
+        return MessageDigest.isEqual(token.get(), presented);
+    }
+}
@@ -0,0 +1,489 @@
+package services;
+
+import akka.Done;
+import akka.NotUsed;
+import akka.japi.Pair;
+import akka.stream.ActorAttributes;
+import akka.stream.Materializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.QueueOfferResult;
+import akka.stream.javadsl.*;
+import akka.util.ByteString;
+import com.typesafe.config.Config;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only, segmented on-disk log of chat messages.
+ *
+ * <p>Each record is a single line of the form {@code <epochMillis>\t<message>\n}, with backslashes,
+ * carriage returns and newlines in the message escaped. Segments are named after the timestamp of
+ * their first record and a new one is started once the active segment reaches the configured size,
+ * so every record in a segment is no older than its name and no newer than the next segment's name.
+ *
+ * <p>Messages are handed to a bounded queue that a single writer drains on its own dispatcher, so
+ * neither disk latency nor running exports can slow down the chat stream feeding it.  The price is
+ * that when the disk falls behind and the queue fills up, new messages are dropped rather than
+ * delayed; every drop is logged and counted in {@link #droppedMessages()}.
+ *
+ * <p>Because the on-disk format is also the export format, sealed segments that fall entirely inside
+ * an exported range are streamed straight from the file; only the segments at the edges of the range
+ * are scanned record by record.
+ */
+@Singleton
+public class ChatLog {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(ChatLog.class);
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d+)\\.log");
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    private static final int TIMESTAMP_PREFIX_LENGTH = 32;
+    private static final byte NEWLINE = '\n';
+    private static final long DROP_LOG_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+    private static final String EXPORT_DISPATCHER = "akka.stream.default-blocking-io-dispatcher";
+
+    private final Path directory;
+    private final long segmentSize;
+    private final SourceQueueWithComplete<String> queue;
+    private final CompletionStage<Done> written;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong lastDropLog = new AtomicLong(System.nanoTime() - DROP_LOG_INTERVAL);
+
+    private final SegmentOpener opener;
+
+    private FileChannel active;
+    private volatile Mark committed;
+    private boolean broken;
+    private long lastTimestamp;
+
+    @Inject
+    public ChatLog(Config config, ApplicationLifecycle lifecycle, Materializer mat) throws IOException {
+        this(Paths.get(config.getString("chat.log.directory")),
+                config.getBytes("chat.log.segment-size"),
+                config.getInt("chat.log.buffer-size"),
+                "chat.log.dispatcher",
+                mat);
+        lifecycle.addStopHook(this::stop);
+    }
+
+    /**
+     * @param bufferSize number of messages that may wait for the writer before new ones are dropped
+     * @param dispatcher config path of the dispatcher the writer runs on
+     */
+    public ChatLog(Path directory, long segmentSize, int bufferSize, String dispatcher, Materializer mat) throws IOException {
+        this(directory, segmentSize, bufferSize, dispatcher, mat, path -> FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    }
+
+    ChatLog(Path directory, long segmentSize, int bufferSize, String dispatcher, Materializer mat,
+            SegmentOpener opener) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.opener = opener;
+        Files.createDirectories(directory);
+
+        List<Segment> existing = listSegments();
+        if (existing.isEmpty()) {
+            open(System.currentTimeMillis());
+        } else {
+            Segment last = existing.get(existing.size() - 1);
+            recover(last.path);
+            open(last.start);
+        }
+
+        // The queue sits behind its own async boundary, so offers are accepted or dropped right away
+        // even while the writer is blocked on the disk.
+        Pair<SourceQueueWithComplete<String>, CompletionStage<Done>> writer = Source.<String>queue(bufferSize, OverflowStrategy.dropNew())
+                .async()
+                .toMat(Sink.<String>foreach(this::record).withAttributes(ActorAttributes.dispatcher(dispatcher)), Keep.both())
+                .run(mat);
+        this.queue = writer.first();
+        this.written = writer.second();
+    }
+
+    /**
+     * A sink that hands every message it receives to the writer.  It never backpressures.
+     */
+    public Sink<String, NotUsed> sink() {
+        return Sink.<String>foreach(this::offer)
+                .mapMaterializedValue(done -> NotUsed.getInstance());
+    }
+
+    /**
+     * Queues a message for the writer, dropping it if the writer's buffer is full or the writer has stopped.
+     */
+    public void offer(String message) {
+        queue.offer(message).whenComplete((result, failure) -> {
+            if (failure != null || !QueueOfferResult.enqueued().equals(result)) {
+                countDrop(failure);
+            }
+        });
+    }
+
+    /**
+     * Number of messages dropped because the writer could not keep up or had already stopped.
+     */
+    public long droppedMessages() {
+        return dropped.get();
+    }
+
+    /**
+     * Appends a message stamped with the current time, starting a new segment first if the active one is full.
+     *
+     * <p>If the write fails part way, the partial record is cut off again so that the next record does
+     * not get glued onto it.  Should that fail too, the segment is abandoned and the next append rolls.
+     */
+    public synchronized void append(String message) throws IOException {
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+        if (broken) {
+            roll(Math.max(timestamp, committed.start + 1));
+            timestamp = committed.start;
+        } else if (committed.length >= segmentSize && timestamp > committed.start) {
+            // Only roll on a fresh millisecond so that segment names stay unique.
+            roll(timestamp);
+        }
+        ByteBuffer buffer = encode(timestamp, message);
+        long position = committed.length;
+        try {
+            while (buffer.hasRemaining()) {
+                active.write(buffer);
+            }
+        } catch (IOException e) {
+            discardFrom(position);
+            throw e;
+        }
+        lastTimestamp = timestamp;
+        committed = new Mark(committed.start, position + buffer.limit());
+    }
+
+    /**
+     * Streams every record with a timestamp in {@code [from, to)} as newline-terminated lines.
+     *
+     * <p>Segments are opened one at a time, so memory use does not depend on the size of the range.
+     * Records appended after this call are not included.  Listing, reading and filtering all happen
+     * on the blocking IO dispatcher once the stream runs, away from the threads serving {@code /chat}.
+     */
+    public Source<ByteString, NotUsed> export(long from, long to) {
+        Mark mark = committed;
+        return Source.lazily(() -> Source.from(snapshot(mark)))
+                .filter(segment -> segment.start < to && segment.end >= from)
+                .flatMapConcat(segment -> segment.within(from, to) ? whole(segment) : boundary(segment, from, to))
+                .mapMaterializedValue(listed -> NotUsed.getInstance())
+                .async(EXPORT_DISPATCHER);
+    }
+
+    /**
+     * Stops accepting messages, waits for the queued ones to be written and closes the active segment.
+     */
+    public CompletionStage<Done> stop() {
+        queue.complete();
+        return written.thenApply(done -> {
+            try {
+                close();
+            } catch (IOException e) {
+                logger.error("Failed to close chat log", e);
+            }
+            return done;
+        });
+    }
+
+    private synchronized void close() throws IOException {
+        active.close();
+    }
+
+    /**
+     * Counts a dropped message.  Logs the first drop and then at most one summary per interval, so a
+     * sustained overload does not flood the log as well.
+     */
+    private void countDrop(Throwable failure) {
+        long count = dropped.incrementAndGet();
+        long now = System.nanoTime();
+        long last = lastDropLog.get();
+        if (now - last >= DROP_LOG_INTERVAL && lastDropLog.compareAndSet(last, now)) {
+            if (failure != null) {
+                logger.error("Chat log is dropping messages ({} dropped so far)", count, failure);
+            } else {
+                logger.error("Chat log is dropping messages ({} dropped so far)", count);
+            }
+        }
+    }
+
+    private void record(String message) {
+        try {
+            append(message);
+        } catch (IOException e) {
+            logger.error("Failed to record chat message", e);
+        }
+    }
+
+    /**
+     * Prepares the last segment for appending after a restart: drops a record torn by a crash and
+     * resumes the clock from the last complete record, so later segments are never named earlier.
+     */
+    private void recover(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long end = lineStart(channel, channel.size());
+            if (end < channel.size()) {
+                logger.warn("Truncating incomplete record at the end of {}", path);
+                channel.truncate(end);
+            }
+            if (end > 0) {
+                long start = lineStart(channel, end - 1);
+                ByteBuffer prefix = ByteBuffer.allocate((int) Math.min(TIMESTAMP_PREFIX_LENGTH, end - start));
+                readFully(channel, prefix, start);
+                prefix.flip();
+                lastTimestamp = Math.max(lastTimestamp, timestamp(ByteString.fromByteBuffer(prefix)));
+            }
+        }
+    }
+
+    /**
+     * Returns the position just past the last newline before {@code end}, or 0 if there is none.
+     */
+    private static long lineStart(FileChannel channel, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = end;
+        while (position > 0) {
+            int length = (int) Math.min(buffer.capacity(), position);
+            position -= length;
+            buffer.clear();
+            buffer.limit(length);
+            readFully(channel, buffer, position);
+            for (int i = length - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private void open(long start) throws IOException {
+        active = opener.open(directory.resolve(start + ".log"));
+        committed = new Mark(start, active.size());
+        lastTimestamp = Math.max(lastTimestamp, start);
+    }
+
+    /**
+     * Opens the next segment before giving up the current one, so a failure leaves us writable.
+     */
+    private void roll(long start) throws IOException {
+        FileChannel previous = active;
+        open(start);
+        broken = false;
+        try {
+            previous.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close sealed chat log segment", e);
+        }
+    }
+
+    private void discardFrom(long position) {
+        try {
+            active.truncate(position);
+        } catch (IOException e) {
+            broken = true;
+            logger.error("Failed to remove incomplete record from chat log segment {}, starting a new one", committed.start, e);
+        }
+    }
+
+    /**
+     * Lists the segments as they stood at {@code mark}: later segments are left out and the active
+     * one is cut off after its last record at that point.
+     */
+    private List<Segment> snapshot(Mark mark) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        for (Segment segment : listSegments()) {
+            if (segment.start > mark.start) {
+                break;
+            }
+            segment.active = segment.start == mark.start;
+            segment.length = segment.active ? mark.length : Files.size(segment.path);
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    private List<Segment> listSegments() throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+            for (Path path : paths) {
+                Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    segments.add(new Segment(path, Long.parseLong(matcher.group(1))));
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(segment -> segment.start));
+        for (int i = 0; i < segments.size(); i++) {
+            segments.get(i).end = i + 1 < segments.size() ? segments.get(i + 1).start : Long.MAX_VALUE;
+        }
+        return segments;
+    }
+
+    private static Source<ByteString, NotUsed> whole(Segment segment) {
+        return FileIO.fromPath(segment.path)
+                .mapMaterializedValue(io -> NotUsed.getInstance());
+    }
+
+    private static Source<ByteString, NotUsed> boundary(Segment segment, long from, long to) {
+        return FileIO.fromPath(segment.path)
+                .via(limit(segment.length))
+                .<ByteString>statefulMapConcat(RecordSplitter::new)
+                .filter(record -> {
+                    long timestamp = timestamp(record);
+                    return timestamp >= from && timestamp < to;
+                })
+                .mapMaterializedValue(io -> NotUsed.getInstance());
+    }
+
+    /**
+     * Passes through the first {@code length} bytes and then completes, cancelling the file read.
+     */
+    private static Flow<ByteString, ByteString, NotUsed> limit(long length) {
+        return Flow.of(ByteString.class)
+                .<ByteString>statefulMapConcat(() -> {
+                    long[] remaining = {length};
+                    return chunk -> {
+                        ByteString taken = chunk.take((int) Math.min(chunk.size(), remaining[0]));
+                        remaining[0] -= taken.size();
+                        return Collections.singletonList(taken);
+                    };
+                })
+                .takeWhile(chunk -> !chunk.isEmpty());
+    }
+
+    private static ByteBuffer encode(long timestamp, String message) {
+        StringBuilder line = new StringBuilder(message.length() + 24).append(timestamp).append('\t');
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            switch (c) {
+                case '\\': line.append("\\\\"); break;
+                case '\n': line.append("\\n"); break;
+                case '\r': line.append("\\r"); break;
+                default: line.append(c);
+            }
+        }
+        line.append('\n');
+        return ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses the leading timestamp of a record, or returns -1 if the record is malformed.
+     */
+    private static long timestamp(ByteString record) {
+        long timestamp = 0;
+        for (int i = 0; i < record.size(); i++) {
+            byte b = record.apply(i);
+            if (b == '\t') {
+                return i > 0 ? timestamp : -1;
+            }
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            timestamp = timestamp * 10 + (b - '0');
+        }
+        return -1;
+    }
+
+    /**
+     * Splits a byte stream into newline-terminated records.  A record longer than
+     * {@code MAX_RECORD_LENGTH} or an unterminated tail is skipped rather than failing the export.
+     */
+    private static final class RecordSplitter implements akka.japi.function.Function<ByteString, Iterable<ByteString>> {
+        private ByteString pending = ByteString.empty();
+        private boolean oversized;
+
+        @Override
+        public Iterable<ByteString> apply(ByteString chunk) {
+            List<ByteString> records = new ArrayList<>();
+            int start = 0;
+            int newline;
+            while ((newline = chunk.indexOf(NEWLINE, start)) >= 0) {
+                ByteString record = pending.concat(chunk.slice(start, newline + 1));
+                if (!oversized && record.size() <= MAX_RECORD_LENGTH) {
+                    records.add(record);
+                }
+                pending = ByteString.empty();
+                oversized = false;
+                start = newline + 1;
+            }
+            pending = pending.concat(chunk.drop(start));
+            if (pending.size() > MAX_RECORD_LENGTH) {
+                pending = ByteString.empty();
+                oversized = true;
+            }
+            return records;
+        }
+    }
+
+    /**
+     * Opens a segment file for appending.
+     */
+    interface SegmentOpener {
+        FileChannel open(Path path) throws IOException;
+    }
+
+    /**
+     * Start of the active segment and its length up to the end of the last complete record.  Published
+     * by the writer so that exports can take a consistent view without its lock.
+     */
+    private static final class Mark {
+        final long start;
+        final long length;
+
+        Mark(long start, long length) {
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        final Path path;
+        final long start;
+        long end;
+        long length;
+        boolean active;
+
+        Segment(Path path, long start) {
+            this.path = path;
+            this.start = start;
+        }
+
+        /**
+         * Whether every record in this segment falls inside {@code [from, to)}.  Records may share the
+         * next segment's start time, hence the strict comparison against {@code to}.
+         */
+        boolean within(long from, long to) {
+            return !active && start >= from && end < to;
+        }
+    }
+}
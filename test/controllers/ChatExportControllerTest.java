@@ -0,0 +1,117 @@
+package controllers;
+
+import play.shaded.ahc.org.asynchttpclient.AsyncHttpClient;
+import play.shaded.ahc.org.asynchttpclient.DefaultAsyncHttpClient;
+import play.shaded.ahc.org.asynchttpclient.netty.ws.NettyWebSocket;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import play.Application;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.libs.ws.WSClient;
+import play.libs.ws.WSRequest;
+import play.libs.ws.WSResponse;
+import play.test.WithServer;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static play.mvc.Http.Status.BAD_REQUEST;
+import static play.mvc.Http.Status.OK;
+import static play.mvc.Http.Status.UNAUTHORIZED;
+
+/**
+ * Functional tests for the chat history export route.
+ * Test framework: JUnit 4 + Play test helpers.
+ */
+public class ChatExportControllerTest extends WithServer {
+
+    private static final String TOKEN = "test-admin-token";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Override
+    protected Application provideApplication() {
+        return new GuiceApplicationBuilder()
+                .configure("chat.log.directory", folder.getRoot().getAbsolutePath())
+                .configure("admin.token", TOKEN)
+                .build();
+    }
+
+    @Test
+    public void export_shouldRejectRequestWithoutToken() throws Exception {
+        try (WSClient ws = play.test.WSTestClient.newClient(port())) {
+            WSResponse response = get(ws.url(exportUrl(0, 1)));
+            assertEquals(UNAUTHORIZED, response.getStatus());
+        }
+    }
+
+    @Test
+    public void export_shouldRejectRequestWithWrongToken() throws Exception {
+        try (WSClient ws = play.test.WSTestClient.newClient(port())) {
+            WSResponse response = get(ws.url(exportUrl(0, 1)).addHeader("Authorization", "Bearer not-the-token"));
+            assertEquals(UNAUTHORIZED, response.getStatus());
+        }
+    }
+
+    @Test
+    public void export_shouldRejectEmptyRange() throws Exception {
+        try (WSClient ws = play.test.WSTestClient.newClient(port())) {
+            WSResponse response = get(authorized(ws.url(exportUrl(5, 5))));
+            assertEquals(BAD_REQUEST, response.getStatus());
+        }
+    }
+
+    @Test
+    public void export_shouldStreamChunkedTextAttachment() throws Exception {
+        try (WSClient ws = play.test.WSTestClient.newClient(port())) {
+            WSResponse response = get(authorized(ws.url(exportUrl(1000, 2000))));
+            assertEquals(OK, response.getStatus());
+            assertEquals("text/plain; charset=utf-8", response.getContentType().toLowerCase(Locale.ROOT));
+            assertEquals("chunked", response.getSingleHeader("Transfer-Encoding").orElse(null));
+            assertEquals("attachment; filename=\"chat-1000-2000.log\"",
+                    response.getSingleHeader("Content-Disposition").orElse(null));
+            assertEquals("", response.getBody());
+        }
+    }
+
+    // A message sent over /chat is recorded and comes back out of the export
+    @Test
+    public void export_shouldIncludeMessagesSentOverChat() throws Exception {
+        String chatUrl = "ws://localhost:" + port() + "/chat";
+        AsyncHttpClient asyncHttpClient = new DefaultAsyncHttpClient();
+        try (WSClient ws = play.test.WSTestClient.newClient(port())) {
+            WebSocketClient webSocketClient = new WebSocketClient(asyncHttpClient);
+            NettyWebSocket socket = webSocketClient.call(chatUrl, chatUrl, new WebSocketClient.LoggingListener())
+                    .get(5, TimeUnit.SECONDS);
+            socket.sendTextFrame("hello\ncompliance");
+
+            await().untilAsserted(() -> {
+                String body = get(authorized(ws.url(exportUrl(0, Long.MAX_VALUE)))).getBody();
+                assertTrue("Export should contain the chat message", body.matches("\\d+\thello\\\\ncompliance\n"));
+            });
+        } finally {
+            asyncHttpClient.close();
+        }
+    }
+
+    private static WSRequest authorized(WSRequest request) {
+        return request.addHeader("Authorization", "Bearer " + TOKEN);
+    }
+
+    private int port() {
+        return this.testServer.getRunningHttpPort().getAsInt();
+    }
+
+    private String exportUrl(long from, long to) {
+        return "http://localhost:" + port() + "/admin/chat/export?from=" + from + "&to=" + to;
+    }
+
+    private static WSResponse get(WSRequest request) throws Exception {
+        return request.get().toCompletableFuture().get();
+    }
+}
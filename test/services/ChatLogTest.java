@@ -0,0 +1,261 @@
+package services;
+
+import akka.NotUsed;
+import akka.actor.ActorSystem;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for segment selection and record filtering in the on-disk chat log.
+ * Test framework: JUnit 4 + Akka Streams.
+ */
+public class ChatLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ActorSystem system;
+    private Materializer mat;
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        system = ActorSystem.create("ChatLogTest");
+        mat = ActorMaterializer.create(system);
+        directory = folder.getRoot().toPath();
+        write("1000.log", "1000\tfirst\n1500\tsecond\n");
+        write("2000.log", "2000\tthird\n2500\tfourth\n");
+        write("3000.log", "3000\tfifth\n");
+    }
+
+    @After
+    public void tearDown() {
+        system.terminate();
+    }
+
+    @Test
+    public void export_shouldStreamWholeSegmentsAndFilterBoundaries() throws Exception {
+        ChatLog chatLog = chatLog(1024);
+        assertEquals("1500\tsecond\n2000\tthird\n", export(chatLog, 1200, 2500));
+        assertEquals("1000\tfirst\n1500\tsecond\n2000\tthird\n2500\tfourth\n", export(chatLog, 1000, 2600));
+        assertEquals("2500\tfourth\n3000\tfifth\n", export(chatLog, 2100, 3001));
+        stop(chatLog);
+    }
+
+    @Test
+    public void export_shouldReturnNothing_whenRangeBeforeFirstSegment() throws Exception {
+        ChatLog chatLog = chatLog(1024);
+        assertEquals("", export(chatLog, 0, 1000));
+        stop(chatLog);
+    }
+
+    @Test
+    public void append_shouldEscapeLineBreaks_andRollFullSegments() throws Exception {
+        ChatLog chatLog = chatLog(1);
+        chatLog.append("multi\nline");
+        String exported = export(chatLog, 3001, Long.MAX_VALUE);
+        assertTrue("Record should end with escaped message", exported.endsWith("\tmulti\\nline\n"));
+        assertEquals("Full active segment should have been rolled", 4, directory.toFile().list().length);
+        stop(chatLog);
+    }
+
+    @Test
+    public void append_shouldEscapeBackslashesAndCarriageReturns() throws Exception {
+        ChatLog chatLog = chatLog(1024);
+        chatLog.append("back\\slash\rreturn");
+        assertTrue(read("3000.log").endsWith("\tback\\\\slash\\rreturn\n"));
+        stop(chatLog);
+    }
+
+    @Test
+    public void append_shouldKeepWriting_whenRollFails() throws Exception {
+        long future = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        write("3000.log", "3000\tfifth\n" + future + "\tfrom the future\n");
+        ChatLog chatLog = chatLog(1);
+        Path blocked = Files.createDirectory(directory.resolve(future + ".log"));
+        try {
+            chatLog.append("lost");
+            fail("Roll onto a directory should fail");
+        } catch (IOException expected) {
+            // the segment name is taken by a directory
+        }
+        Files.delete(blocked);
+        chatLog.append("retried");
+        assertEquals(future + "\tretried\n", read(future + ".log"));
+        stop(chatLog);
+    }
+
+    @Test
+    public void append_shouldCutOffPartialRecord_whenWriteFails() throws Exception {
+        List<FailingFileChannel> channels = new ArrayList<>();
+        ChatLog chatLog = chatLog(1024, channels);
+        channels.get(0).failNextWrite = true;
+        try {
+            chatLog.append("torn");
+            fail("Write should have failed");
+        } catch (IOException expected) {
+            // half the record reached the file
+        }
+        chatLog.append("after");
+        assertTrue(read("3000.log").matches("3000\tfifth\n\\d+\tafter\n"));
+        assertTrue(export(chatLog, 0, Long.MAX_VALUE).matches("(?s).*3000\tfifth\n\\d+\tafter\n"));
+        stop(chatLog);
+    }
+
+    @Test
+    public void append_shouldStartNewSegment_whenPartialRecordCannotBeCutOff() throws Exception {
+        List<FailingFileChannel> channels = new ArrayList<>();
+        ChatLog chatLog = chatLog(1024, channels);
+        channels.get(0).failNextWrite = true;
+        channels.get(0).failTruncate = true;
+        try {
+            chatLog.append("torn");
+            fail("Write should have failed");
+        } catch (IOException expected) {
+            // half the record reached the file and could not be removed
+        }
+        chatLog.append("after");
+        assertEquals("Next record should go to a fresh segment", 2, channels.size());
+        assertTrue(export(chatLog, 3001, Long.MAX_VALUE).matches("\\d+\tafter\n"));
+        stop(chatLog);
+    }
+
+    @Test
+    public void export_shouldExcludeRecordsAppendedAfterTheCall() throws Exception {
+        ChatLog chatLog = chatLog(1024);
+        Source<ByteString, NotUsed> export = chatLog.export(0, Long.MAX_VALUE);
+        chatLog.append("late");
+        String exported = collect(export);
+        assertFalse(exported.contains("late"));
+        assertTrue(exported.endsWith("3000\tfifth\n"));
+        stop(chatLog);
+    }
+
+    @Test
+    public void export_shouldExcludeSegmentsStartedAfterTheCall() throws Exception {
+        ChatLog chatLog = chatLog(1);
+        Source<ByteString, NotUsed> export = chatLog.export(0, Long.MAX_VALUE);
+        chatLog.append("late");
+        assertEquals("Append should have rolled to a new segment", 4, directory.toFile().list().length);
+        assertTrue(collect(export).endsWith("2500\tfourth\n3000\tfifth\n"));
+        stop(chatLog);
+    }
+
+    @Test
+    public void sink_shouldHandMessagesToTheWriter() throws Exception {
+        ChatLog chatLog = chatLog(1024);
+        Source.from(Arrays.asList("one", "two")).runWith(chatLog.sink(), mat);
+        await().untilAsserted(() ->
+                assertTrue(export(chatLog, 3001, Long.MAX_VALUE).matches("\\d+\tone\n\\d+\ttwo\n")));
+        assertEquals(0, chatLog.droppedMessages());
+        stop(chatLog);
+    }
+
+    @Test
+    public void offer_shouldCountDrops_whenWriterFallsBehind() throws Exception {
+        ChatLog chatLog = chatLog(1024);
+        // The writer needs the log's monitor to append, so holding it stalls the writer.
+        synchronized (chatLog) {
+            for (int i = 0; i < 100; i++) {
+                chatLog.offer("message " + i);
+            }
+            await().untilAsserted(() -> assertTrue(chatLog.droppedMessages() > 0));
+        }
+        stop(chatLog);
+    }
+
+    @Test
+    public void offer_shouldCountDrops_afterStop() throws Exception {
+        ChatLog chatLog = chatLog(1024);
+        stop(chatLog);
+        chatLog.offer("too late");
+        await().untilAsserted(() -> assertEquals(1, chatLog.droppedMessages()));
+    }
+
+    @Test
+    public void reopen_shouldTruncateIncompleteLastRecord() throws Exception {
+        write("3000.log", "3000\tfifth\n3100\tsix");
+        ChatLog chatLog = chatLog(1024);
+        assertEquals("3000\tfifth\n", read("3000.log"));
+        chatLog.append("sixth");
+        assertTrue(read("3000.log").matches("3000\tfifth\n\\d+\tsixth\n"));
+        stop(chatLog);
+    }
+
+    @Test
+    public void reopen_shouldResumeClockFromLastRecord() throws Exception {
+        long future = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        write("3000.log", "3000\tfifth\n" + future + "\tfrom the future\n");
+        ChatLog chatLog = chatLog(1);
+        chatLog.append("now");
+        assertEquals("Rolled segment should not be named before existing records",
+                future + "\tnow\n", read(future + ".log"));
+        stop(chatLog);
+    }
+
+    @Test
+    public void export_shouldSkipIncompleteRecordInBoundarySegment() throws Exception {
+        write("2000.log", "2000\tthird\n2500\tfou");
+        ChatLog chatLog = chatLog(1024);
+        assertEquals("1500\tsecond\n2000\tthird\n", export(chatLog, 1500, 2900));
+        stop(chatLog);
+    }
+
+    private ChatLog chatLog(long segmentSize) throws Exception {
+        return new ChatLog(directory, segmentSize, 16, "akka.actor.default-dispatcher", mat);
+    }
+
+    private ChatLog chatLog(long segmentSize, List<FailingFileChannel> channels) throws Exception {
+        return new ChatLog(directory, segmentSize, 16, "akka.actor.default-dispatcher", mat, path -> {
+            FailingFileChannel channel = new FailingFileChannel(FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+            channels.add(channel);
+            return channel;
+        });
+    }
+
+    private void stop(ChatLog chatLog) throws Exception {
+        chatLog.stop().toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+
+    private void write(String name, String content) throws Exception {
+        Files.write(directory.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String read(String name) throws Exception {
+        return new String(Files.readAllBytes(directory.resolve(name)), StandardCharsets.UTF_8);
+    }
+
+    private String export(ChatLog chatLog, long from, long to) throws Exception {
+        return collect(chatLog.export(from, to));
+    }
+
+    private String collect(Source<ByteString, NotUsed> export) throws Exception {
+        return export.runWith(Sink.fold(ByteString.empty(), ByteString::concat), mat)
+                .toCompletableFuture()
+                .get(5, TimeUnit.SECONDS)
+                .utf8String();
+    }
+}